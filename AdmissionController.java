@@ -0,0 +1,259 @@
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Per-command admission control in front of the FlightService dispatch.
+ * Admission happens in the database, where the requests of all clients meet.
+ * Every command has a pool of slots, each one a session-owned application lock,
+ * and a row in the admission table holding the size of that pool and, for
+ * non-priority commands, the time until which they are shed. A slot held by any
+ * client counts against the shared limit and is released by the server if that
+ * client dies.
+ * Each client reports the latency it observes back into the shared row (additive
+ * increase, multiplicative decrease against the best latency of a recent window).
+ * While a priority command ("book", "cancel", "reservations", "waitlist") is
+ * congested, "search" is shed for every client with a retry-after hint.
+ * If the database cannot answer within the timeouts, commands are let through.
+ */
+public class AdmissionController {
+
+	// latency above this multiple of the best recent latency counts as congestion
+	private static final double TOLERANCE = 2.0;
+	// multiplicative decrease applied to the limit when congested
+	private static final double BACKOFF = 0.9;
+	// weight of the newest sample in the smoothed latency
+	private static final double SMOOTHING = 0.2;
+	// number of recent samples the best latency is taken from
+	private static final int WINDOW = 20;
+	private static final int MIN_LIMIT = 1;
+	private static final int MAX_LIMIT = 32;
+	// smallest retry-after hint handed out, in milliseconds
+	private static final long MIN_RETRY_MILLIS = 100;
+	// admission gives up on the database after these, so it never waits on the overload it guards against
+	private static final int LOGIN_TIMEOUT_SECONDS = 2;
+	private static final int QUERY_TIMEOUT_SECONDS = 1;
+	// how long commands are let through unchecked after the admission connection failed
+	private static final long RECONNECT_MILLIS = 10000;
+
+	// takes the first free slot below the shared limit without waiting, unless the command is shed.
+	// returns slot -1 if none was taken, and how long the command is still shed for
+	private static final String ACQUIRE_SQL =
+			"SET NOCOUNT ON; "
+			+ "DECLARE @command varchar(20) = ?, @limit int, @shedMillis int = 0, @slot int = 0, @result int, @resource nvarchar(255); "
+			+ "SELECT @limit = CAST(slot_limit AS int), "
+			+ "@shedMillis = CASE WHEN shed_until > SYSUTCDATETIME() THEN DATEDIFF(ms, SYSUTCDATETIME(), shed_until) ELSE 0 END "
+			+ "FROM admission WHERE command = @command; "
+			+ "IF @shedMillis > 0 SET @limit = 0; "
+			+ "WHILE @slot < @limit BEGIN "
+			+ "SET @resource = CONCAT('flightservice_', @command, '_', @slot); "
+			+ "EXEC @result = sp_getapplock @Resource = @resource, @LockMode = 'Exclusive', @LockOwner = 'Session', @LockTimeout = 0; "
+			+ "IF @result >= 0 BREAK; "
+			+ "SET @slot += 1; "
+			+ "END; "
+			+ "SELECT CASE WHEN @slot < @limit THEN @slot ELSE -1 END AS slot, @shedMillis AS shed_millis";
+	private PreparedStatement acquireStatement;
+
+	// gives a slot back and folds the latency observed by this client into the shared limit.
+	// a congested priority command sheds the non-priority ones for every client
+	private static final String RELEASE_SQL =
+			"SET NOCOUNT ON; "
+			+ "DECLARE @command varchar(20) = ?, @slot int = ?, @congested bit = ?, @shedMillis int = ?, "
+			+ "@backoff float = ?, @minLimit float = ?, @maxLimit float = ?, @resource nvarchar(255); "
+			+ "IF @slot >= 0 BEGIN "
+			+ "SET @resource = CONCAT('flightservice_', @command, '_', @slot); "
+			+ "EXEC sp_releaseapplock @Resource = @resource, @LockOwner = 'Session'; "
+			+ "END; "
+			+ "IF @congested = 1 UPDATE admission "
+			+ "SET slot_limit = CASE WHEN slot_limit * @backoff > @minLimit THEN slot_limit * @backoff ELSE @minLimit END "
+			+ "WHERE command = @command; "
+			+ "IF @congested = 0 UPDATE admission "
+			+ "SET slot_limit = CASE WHEN slot_limit + 1 / slot_limit < @maxLimit THEN slot_limit + 1 / slot_limit ELSE @maxLimit END "
+			+ "WHERE command = @command; "
+			+ "IF @congested = 1 AND EXISTS (SELECT * FROM admission WHERE command = @command AND priority = 1) "
+			+ "UPDATE admission SET shed_until = DATEADD(ms, @shedMillis, SYSUTCDATETIME()) "
+			+ "WHERE priority = 0 AND shed_until < DATEADD(ms, @shedMillis, SYSUTCDATETIME())";
+	private PreparedStatement releaseStatement;
+
+	// latency statistics this client observed for a single command
+	private static class Limiter {
+		// slot held by the running command, -1 if none
+		private int slot = -1;
+		private final long[] samples = new long[WINDOW];
+		private int sampleCount = 0;
+		private double smoothedLatency = 0;
+
+		private void record(long latency) {
+			samples[sampleCount % WINDOW] = latency;
+			sampleCount++;
+			if (smoothedLatency == 0) {
+				smoothedLatency = latency;
+			} else {
+				smoothedLatency = (1 - SMOOTHING) * smoothedLatency + SMOOTHING * latency;
+			}
+		}
+
+		// best latency among the recent samples, so the baseline follows lasting changes
+		private long baseline() {
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < Math.min(sampleCount, WINDOW); i++) {
+				best = Math.min(best, samples[i]);
+			}
+			return best;
+		}
+
+		private boolean congested() {
+			return sampleCount > 0 && smoothedLatency > TOLERANCE * baseline();
+		}
+
+		private long retryMillis() {
+			return Math.max(MIN_RETRY_MILLIS, (long) (smoothedLatency / 1000000));
+		}
+	}
+
+	private String configFilename;
+	private Properties configProps = new Properties();
+	private Connection conn;
+	// no new connection is tried before this time
+	private long reconnectAt = 0;
+
+	private final Map<String, Limiter> limiters = new HashMap<String, Limiter>();
+
+	public AdmissionController(String configFilename) {
+		this.configFilename = configFilename;
+		limiters.put("search", new Limiter());
+		limiters.put("book", new Limiter());
+		limiters.put("reservations", new Limiter());
+		limiters.put("cancel", new Limiter());
+		limiters.put("waitlist", new Limiter());
+	}
+
+	/* opens a connection of its own, so the slots never mix with the transactions of the user */
+	public void openConnection() throws Exception {
+		configProps.load(new FileInputStream(configFilename));
+		Class.forName(configProps.getProperty("flightservice.jdbc_driver")).newInstance();
+		connect();
+	}
+
+	public synchronized void closeConnection() throws Exception {
+		if (conn != null) {
+			conn.close();
+			conn = null;
+		}
+	}
+
+	// connects to the database, or leaves admission open for a while if it does not answer in time
+	private void connect() {
+		Properties connProps = new Properties();
+		connProps.setProperty("user", configProps.getProperty("flightservice.sqlazure_username"));
+		connProps.setProperty("password", configProps.getProperty("flightservice.sqlazure_password"));
+		connProps.setProperty("loginTimeout", String.valueOf(LOGIN_TIMEOUT_SECONDS));
+		try {
+			conn = DriverManager.getConnection(configProps.getProperty("flightservice.url"), connProps);
+			conn.setAutoCommit(true);
+			acquireStatement = conn.prepareStatement(ACQUIRE_SQL);
+			acquireStatement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
+			releaseStatement = conn.prepareStatement(RELEASE_SQL);
+			releaseStatement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			disconnect();
+		}
+	}
+
+	// drops the connection, which also makes the server release any slot this session may still hold
+	private void disconnect() {
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+			}
+			conn = null;
+		}
+		for (Limiter limiter : limiters.values()) {
+			limiter.slot = -1;
+		}
+		reconnectAt = System.currentTimeMillis() + RECONNECT_MILLIS;
+	}
+
+	/**
+	 * Tries to admit the given command. Returns 0 if it was admitted, in
+	 * which case release(...) must be called once it finishes. Otherwise
+	 * returns the number of milliseconds the client should wait before retrying.
+	 */
+	public synchronized long tryAcquire(String command) {
+		Limiter limiter = limiters.get(command);
+		if (limiter == null) {
+			return 0;
+		}
+		if (conn == null) {
+			if (System.currentTimeMillis() < reconnectAt) {
+				return 0;
+			}
+			connect();
+			if (conn == null) {
+				return 0;
+			}
+		}
+		int shedMillis = 0;
+		try {
+			acquireStatement.clearParameters();
+			acquireStatement.setString(1, command);
+			ResultSet slotResults = acquireStatement.executeQuery();
+			if (slotResults.next()) {
+				limiter.slot = slotResults.getInt("slot");
+				shedMillis = slotResults.getInt("shed_millis");
+			}
+			slotResults.close();
+		} catch (SQLException e) {
+			// admission must not take the service down with it, let the command through
+			disconnect();
+			return 0;
+		}
+		if (limiter.slot < 0) {
+			return shedMillis > 0 ? shedMillis : limiter.retryMillis();
+		}
+		return 0;
+	}
+
+	/**
+	 * Releases a command admitted by tryAcquire(...). If it ran a transaction,
+	 * the time it took is used to adjust the shared limit.
+	 */
+	public synchronized void release(String command, long elapsedNanos, boolean ranTransaction) {
+		Limiter limiter = limiters.get(command);
+		if (limiter == null) {
+			return;
+		}
+		if (ranTransaction) {
+			limiter.record(elapsedNanos);
+		}
+		if (conn == null || (limiter.slot < 0 && !ranTransaction)) {
+			return;
+		}
+		try {
+			releaseStatement.clearParameters();
+			releaseStatement.setString(1, command);
+			releaseStatement.setInt(2, limiter.slot);
+			if (ranTransaction) {
+				releaseStatement.setBoolean(3, limiter.congested());
+			} else {
+				releaseStatement.setNull(3, Types.BIT);
+			}
+			releaseStatement.setInt(4, (int) (2 * limiter.retryMillis()));
+			releaseStatement.setDouble(5, BACKOFF);
+			releaseStatement.setDouble(6, MIN_LIMIT);
+			releaseStatement.setDouble(7, MAX_LIMIT);
+			releaseStatement.execute();
+			limiter.slot = -1;
+		} catch (SQLException e) {
+			disconnect();
+		}
+	}
+}
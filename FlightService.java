@@ -2,11 +2,13 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class FlightService {
 	private static final String DBCONFIG_FILENAME = "dbconn.properties";
+	private static final AdmissionController admission = new AdmissionController(DBCONFIG_FILENAME);
 
 	public static void usage() {
 		/* prints the choices for commands and parameters */
@@ -15,6 +17,7 @@ public class FlightService {
 		System.out.println("> login <username> <password>");
 		System.out.println("> search <origin_city> <destination_city> <direct> <date> <nb itineraries>");
 		System.out.println("> book <itinerary_id>");
+		System.out.println("> waitlist <itinerary_id>");
 		System.out.println("> reservations");
 		System.out.println("> cancel <reservation_id>");
 		System.out.println("> quit");
@@ -34,6 +37,22 @@ public class FlightService {
 		return tokens.toArray(new String[0]);
 	}
 
+	/* runs the given command if the admission controller admits it, prints the retry hint if it is rejected */
+	public static void run(Query q, String command, Callable<Void> body) throws Exception {
+		long retryAfter = admission.tryAcquire(command);
+		if (retryAfter > 0) {
+			System.out.println("The service is busy, please retry " + command + " in " + retryAfter + " ms.");
+			return;
+		}
+		int transactionsBefore = q.transactionsRun();
+		long start = System.nanoTime();
+		try {
+			body.call();
+		} finally {
+			admission.release(command, System.nanoTime() - start, q.transactionsRun() > transactionsBefore);
+		}
+	}
+
 	public static void menu(Query q) throws Exception {
 
 		/* prepare to read the user's command and parameter(s) */
@@ -46,6 +65,9 @@ public class FlightService {
 			System.out.print("> ");
 
 			command = r.readLine();
+			if (command == null) {
+				return; // end of input, same as quit
+			}
 			String[] tokens = tokenize(command.trim());
 			if (tokens.length == 0) {
 				System.out.println("Please enter a command");
@@ -81,8 +103,11 @@ public class FlightService {
 						System.out.println("Failed to parse integer");
 						continue;
 					}
-					System.out.println("Searching for flights");
-					q.transaction_search_safe(originCity, destinationCity, direct, day, count);
+					run(q, "search", () -> {
+						System.out.println("Searching for flights");
+						q.transaction_search_safe(originCity, destinationCity, direct, day, count);
+						return null;
+					});
 				} else {
 					System.out.println("Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>");
 				}
@@ -92,8 +117,24 @@ public class FlightService {
 				/* book a flight ticket */
 				if (tokens.length == 2) {
 					int itinerary_id = Integer.parseInt(tokens[1]);
-					System.out.println("Booking itinerary.");
-					q.transaction_book(itinerary_id);
+					run(q, "book", () -> {
+						System.out.println("Booking itinerary.");
+						q.transaction_book(itinerary_id);
+						return null;
+					});
+				} else {
+					System.out.println("Error: Please provide an itinerary_id");
+				}
+			}
+
+			else if (tokens[0].equals("waitlist")) {
+				/* wait for a seat on a full flight */
+				if (tokens.length == 2) {
+					int itinerary_id = Integer.parseInt(tokens[1]);
+					run(q, "waitlist", () -> {
+						q.transaction_waitlist(itinerary_id);
+						return null;
+					});
 				} else {
 					System.out.println("Error: Please provide an itinerary_id");
 				}
@@ -101,22 +142,28 @@ public class FlightService {
 
 			else if (tokens[0].equals("reservations")) {
 				/* list all reservations */
-				q.transaction_reservations();
+				run(q, "reservations", () -> {
+					q.transaction_reservations();
+					return null;
+				});
 			}
 
 			else if (tokens[0].equals("cancel")) {                          
 				/* cancel a reservation */
 				if (tokens.length == 2) {
 					int reservation_id = Integer.parseInt(tokens[1]);
-					System.out.println("Canceling reservation.");
-					q.transaction_cancel(reservation_id);
+					run(q, "cancel", () -> {
+						System.out.println("Canceling reservation.");
+						q.transaction_cancel(reservation_id);
+						return null;
+					});
 				} else {
 					System.out.println("Error: Please provide a reservation_id");
 				}
 			}
 
 			else if (tokens[0].equals("quit")) {
-				System.exit(0);
+				return;
 			}
 			else {
 				System.out.println("Error: unrecognized command '" + tokens[0] + "'");
@@ -130,7 +177,10 @@ public class FlightService {
 		Query q = new Query(DBCONFIG_FILENAME);
 		q.openConnection();
 		q.prepareStatements();
+		admission.openConnection();
+
 		menu(q); /* menu(...) does the real work */
+		admission.closeConnection();
 		q.closeConnection();
 
 	}
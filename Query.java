@@ -38,6 +38,17 @@ public class Query {
 	private int directDivider;
 	// stores local reservations
 	private ArrayList<Integer> localReservation;
+	// number of searches and committed transactions, tells commands that did work from early returns and rollbacks
+	private int transactionsRun = 0;
+
+	// seats on every flight
+	private static final int MAX_CAPACITY = 3;
+
+	// outcomes of booking a single flight, REJECTED is the one-itinerary-per-day rule
+	private static final int BOOKED = 0;
+	private static final int FULL = 1;
+	private static final int REJECTED = 2;
+	private static final int ERROR = 3;
 
 	// Logged In User
 	private String username;
@@ -54,17 +65,16 @@ public class Query {
 					+ "ORDER BY actual_time ASC";
 	private PreparedStatement searchOneHopStatement;
 	
-	// This query searches for two hop flights in July 2015, given day of month, order by total time
+	// This query searches for two hop flights in July 2015, given day of month, order by total time.
+	// The f1.dest_city = f2.origin_city join is precomputed in the connections table (see untitled.sql),
+	// so this is a seek on its clustered (origin_city, dest_city, day_of_month, total_time) index plus TOP
 	private static final String SEARCH_TWO_HOP_SQL = 	
 			"SELECT TOP (?) f1.fid as f1_fid, f1.year,f1.month_id,f1.day_of_month,f1.flight_num as f1_flightNum,f1.origin_city as f1_origin_city, f1.dest_city as f1_dest_city, f1.carrier_id as f1_carrierID, f1.actual_time as f1_actualTime, "
-			+ "f2.fid as f2_fid, f2.flight_num as f2_flight_num, f2.carrier_id as f2_carrier_id, f2.origin_city as f2_origin_city, f2.dest_city as f2_dest_city, f2.actual_time as f2_actualTime, f1.actual_time + f2.actual_time as totalTime "
-			+ "FROM Flights f1, Flights f2 "
-			+ "WHERE f1.origin_city = ? AND f2.dest_city = ? AND f1.day_of_month = ? "
-			+ "AND f1.dest_city = f2.origin_city AND "
-			+ "f1.month_id = 7 AND f1.month_id = f2.month_id AND f1.day_of_month = f2.day_of_month "
-			+ "AND f1.year = 2015 AND f2.year = 2015 "
-			+ "AND f1.actual_time IS NOT NULL AND f2.actual_time IS NOT NULL "
-			+ "ORDER BY totalTime ASC";
+			+ "f2.fid as f2_fid, f2.flight_num as f2_flight_num, f2.carrier_id as f2_carrier_id, f2.origin_city as f2_origin_city, f2.dest_city as f2_dest_city, f2.actual_time as f2_actualTime, c.total_time as totalTime "
+			+ "FROM connections c, Flights f1, Flights f2 "
+			+ "WHERE c.origin_city = ? AND c.dest_city = ? AND c.day_of_month = ? "
+			+ "AND f1.fid = c.f1_fid AND f2.fid = c.f2_fid "
+			+ "ORDER BY c.total_time ASC";
 	private PreparedStatement searchTwoHopStatement;
 	
 	// This query finds the password for given user.
@@ -135,6 +145,47 @@ public class Query {
 			+ "WHERE fid = ?";
 	private PreparedStatement GetCapacityStatement;
 
+	// frees a seat on given flight
+	private static final String REMOVE_CAPACITY_SQL =
+			"UPDATE flights "
+			+ "SET capacity -= 1 "
+			+ "WHERE fid = ? ";
+	private PreparedStatement RemoveCapacityStatement;
+
+	// finds the flight of a given reservation
+	private static final String RESERVATION_FID_SQL =
+			"SELECT fid "
+			+ "FROM reservations "
+			+ "WHERE rid = ? ";
+	private PreparedStatement reservationFidStatement;
+
+	// adds the user to the end of the waitlist of given flight
+	private static final String WAITLIST_ADD_SQL =
+			"INSERT INTO waitlist(username, fid) values(?, ?)";
+	private PreparedStatement waitlistAddStatement;
+
+	// finds whether the user is already on the waitlist of given flight
+	private static final String WAITLIST_FIND_SQL =
+			"SELECT count(*) as size "
+			+ "FROM waitlist "
+			+ "WHERE username = ? "
+			+ "AND fid = ? ";
+	private PreparedStatement waitlistFindStatement;
+
+	// finds the oldest waitlist entry of given flight
+	private static final String WAITLIST_HEAD_SQL =
+			"SELECT TOP (1) wid, username "
+			+ "FROM waitlist "
+			+ "WHERE fid = ? "
+			+ "ORDER BY wid ASC";
+	private PreparedStatement waitlistHeadStatement;
+
+	// removes a given waitlist entry
+	private static final String WAITLIST_REMOVE_SQL =
+			"DELETE FROM waitlist "
+			+ "WHERE wid = ? ";
+	private PreparedStatement waitlistRemoveStatement;
+
 	
 	// transactions
 	private static final String BEGIN_TRANSACTION_SQL =  
@@ -183,6 +234,10 @@ public class Query {
 		conn.close();
 	}
 
+	public int transactionsRun() {
+		return transactionsRun;
+	}
+
 	/**********************************************************/
 	/* prepare all the SQL statements in this method.
       "preparing" a statement is almost like compiling it.  Note
@@ -208,6 +263,12 @@ public class Query {
 		CancelStatement = conn.prepareStatement(CANCEL_SQL);
 		AddCapacityStatement = conn.prepareStatement(ADD_CAPACITY_SQL);
 		GetCapacityStatement = conn.prepareStatement(GET_CAPACITY_SQL);
+		RemoveCapacityStatement = conn.prepareStatement(REMOVE_CAPACITY_SQL);
+		reservationFidStatement = conn.prepareStatement(RESERVATION_FID_SQL);
+		waitlistAddStatement = conn.prepareStatement(WAITLIST_ADD_SQL);
+		waitlistFindStatement = conn.prepareStatement(WAITLIST_FIND_SQL);
+		waitlistHeadStatement = conn.prepareStatement(WAITLIST_HEAD_SQL);
+		waitlistRemoveStatement = conn.prepareStatement(WAITLIST_REMOVE_SQL);
 
 	}
 	
@@ -241,6 +302,7 @@ public class Query {
 		// one hop itineraries
 
 		localSearch.clear();
+		transactionsRun++;
 		searchOneHopStatement.clearParameters();
 		searchOneHopStatement.setInt(1, numberOfItineraries);
 		searchOneHopStatement.setString(2, originCity);
@@ -360,27 +422,17 @@ public class Query {
 		if (loggedIn) {
 			if (localSearch.isEmpty()) {
 				System.out.println("Please make a search before you make a booking.");
-			}else if (itineraryId >= localSearch.size() || itineraryId < 0) {
+			}else if (!validItinerary(itineraryId)) {
 				System.out.println("Please enter a valid itineraryID.");
 			}else {
-				// get the maximum index + 1 to be the next rid
-				ResultSet MaxResults = MaxStatement.executeQuery();
-				while (MaxResults.next()) {
-					max = MaxResults.getInt("Max");
-				}
-				
-				// if the requested itinerary is a direct flight
-				if(itineraryId < directDivider) {
-					book(localSearch.get(itineraryId - 1));
-				}else {
-					
-					// if its a two hop flight, book the first one then the second one
-					book(localSearch.get( 2* itineraryId - directDivider - 2));
-					MaxResults = MaxStatement.executeQuery();
-					while (MaxResults.next()) {
-						max = MaxResults.getInt("Max");
+				// if its a two hop flight, book the first one then the second one
+				for (int fid : itineraryFids(itineraryId)) {
+					int result = book(username, fid);
+					if (result == FULL) {
+						System.out.println("The maximum capacity of this flight has been reached.");
+					}else if (result == REJECTED) {
+						System.out.println("Sorry, but you can only book one itinerary per day.");
 					}
-					book(localSearch.get( 2* itineraryId - directDivider - 1));
 				}
 			}
 		}else {
@@ -388,89 +440,196 @@ public class Query {
 		}
 	}
 
-	// private helper method that does the actual booking given fid
-	private void book(int fid) throws Exception {
+	// checks the itinerary id against the last search, direct flights come first and take one slot each in localSearch, two hop flights take two
+	private boolean validItinerary(int itineraryId) {
+		int twoHopCount = (localSearch.size() - directDivider) / 2;
+		return itineraryId >= 1 && itineraryId <= directDivider + twoHopCount;
+	}
+
+	// finds the flights of a valid itinerary from the last search, one fid for a direct flight and two for a two hop flight
+	private List<Integer> itineraryFids(int itineraryId) {
+		if (itineraryId <= directDivider) {
+			return Arrays.asList(localSearch.get(itineraryId - 1));
+		}
+		return Arrays.asList(localSearch.get(2 * itineraryId - directDivider - 2), localSearch.get(2 * itineraryId - directDivider - 1));
+	}
+
+	// private helper method that books given fid for given user in a transaction of its own
+	private int book(String user, int fid) throws Exception {
 		try {
 			beginTransaction();
-			GetCapacityStatement.setInt(1, fid);
-			ResultSet capacityResult = GetCapacityStatement.executeQuery();
-			int capacity = 0;
-			if (capacityResult.next()) {
-				capacity = capacityResult.getInt("capacity");
-			}
-			//get the capacity for current fid
-			if (capacity < 3) {
-				flightSearchStatement.setInt(1, fid);
-				ResultSet flightSearchResults= flightSearchStatement.executeQuery();
-				int result_dayOfMonth = 0;
-				String result_origin_city = "";
-				while (flightSearchResults.next()) {
-		            result_dayOfMonth = flightSearchResults.getInt("day_of_month");
-		            result_origin_city = flightSearchResults.getString("origin_city");
-				}				
-				reservationFindStatement.setString(1, username);
-				reservationFindStatement.setInt(2, result_dayOfMonth);
-				reservationSizeStatement.setString(1, username);
-				reservationSizeStatement.setInt(2, result_dayOfMonth);
-				ResultSet reservationFindResults = reservationFindStatement.executeQuery();
-				ResultSet reservationSizeResults = reservationSizeStatement.executeQuery();
-				int size = 0;
-				if (reservationSizeResults.next()) {
-					// finds the number of reservations for the user given the day of month.
-					size = reservationSizeResults.getInt("size");
-				}
-				
-				// if its less than 2
-				if (size < 2) {
-					
-					// if it's 1
-					if (reservationFindResults.next()) {
-						int fid2 = reservationFindResults.getInt("fid");
-						flightSearchStatement.setInt(1, fid2);
-						ResultSet flightSearchResults2= flightSearchStatement.executeQuery();
-						String result_dest_city = "";
-						if (flightSearchResults2.next()) {
-				            result_dest_city = flightSearchResults2.getString("dest_city");
-						}		
-						// check if they are two-hop flights by checking if the dest_city and origin_city are the same
-						if (result_dest_city.equals(result_origin_city)) {
-							bookStatement.setInt(1, max + 1);
-							bookStatement.setString(2, username);
-							bookStatement.setInt(3, fid);
-							bookStatement.setInt(4, result_dayOfMonth);
-							bookStatement.execute();
-							AddCapacityStatement.setInt(1, fid);
-							AddCapacityStatement.execute();
-							commitTransaction();
-						}else {
-							System.out.println("Sorry, but you can only book one itinerary per day.");
-							rollbackTransaction();
-						}
-						
-					// if it's 0, directly book the flight
-					}else{
-						bookStatement.setInt(1, max + 1);
-						bookStatement.setString(2, username);
-						bookStatement.setInt(3, fid);
-						bookStatement.setInt(4, result_dayOfMonth);
-						bookStatement.execute();
-						AddCapacityStatement.setInt(1, fid);
-						AddCapacityStatement.execute();
-						commitTransaction();
-					}
-				}else {
-					System.out.println("Sorry, but you can only book one itinerary per day.");
-					rollbackTransaction();
-				}
+			int result = reserve(user, fid);
+			if (result == BOOKED) {
+				commitTransaction();
 			}else {
-				System.out.println("The maximum capacity of this flight has been reached.");
 				rollbackTransaction();
 			}
+			return result;
 		} catch (SQLException e) {
 			try {
 				rollbackTransaction();
 			} catch (SQLException se) {
 			}
+			return ERROR;
+		}
+	}
+
+	// checks whether given user may take a seat on given fid, a flight with a waitlist only has seats for the head of it
+	private boolean hasSeatFor(String user, int fid) throws Exception {
+		//get the capacity for current fid
+		GetCapacityStatement.setInt(1, fid);
+		ResultSet capacityResult = GetCapacityStatement.executeQuery();
+		int capacity = 0;
+		if (capacityResult.next()) {
+			capacity = capacityResult.getInt("capacity");
+		}
+		capacityResult.close();
+		if (capacity >= MAX_CAPACITY) {
+			return false;
+		}
+		waitlistHeadStatement.setInt(1, fid);
+		ResultSet headResults = waitlistHeadStatement.executeQuery();
+		String head = null;
+		if (headResults.next()) {
+			head = headResults.getString("username");
+		}
+		headResults.close();
+		return head == null || head.equals(user);
+	}
+
+	// does the actual booking given user and fid inside the caller's transaction, returns BOOKED, FULL or REJECTED
+	private int reserve(String user, int fid) throws Exception {
+		if (!hasSeatFor(user, fid)) {
+			return FULL;
+		}
+		flightSearchStatement.setInt(1, fid);
+		ResultSet flightSearchResults= flightSearchStatement.executeQuery();
+		int result_dayOfMonth = 0;
+		String result_origin_city = "";
+		while (flightSearchResults.next()) {
+            result_dayOfMonth = flightSearchResults.getInt("day_of_month");
+            result_origin_city = flightSearchResults.getString("origin_city");
+		}				
+		reservationFindStatement.setString(1, user);
+		reservationFindStatement.setInt(2, result_dayOfMonth);
+		reservationSizeStatement.setString(1, user);
+		reservationSizeStatement.setInt(2, result_dayOfMonth);
+		ResultSet reservationFindResults = reservationFindStatement.executeQuery();
+		ResultSet reservationSizeResults = reservationSizeStatement.executeQuery();
+		int size = 0;
+		if (reservationSizeResults.next()) {
+			// finds the number of reservations for the user given the day of month.
+			size = reservationSizeResults.getInt("size");
+		}
+		
+		// a day holds at most the two legs of one itinerary
+		if (size >= 2) {
+			return REJECTED;
+		}
+		
+		// if it's 1, check if they are two-hop flights by checking if the dest_city and origin_city are the same
+		if (reservationFindResults.next()) {
+			int fid2 = reservationFindResults.getInt("fid");
+			flightSearchStatement.setInt(1, fid2);
+			ResultSet flightSearchResults2= flightSearchStatement.executeQuery();
+			String result_dest_city = "";
+			if (flightSearchResults2.next()) {
+	            result_dest_city = flightSearchResults2.getString("dest_city");
+			}		
+			if (!result_dest_city.equals(result_origin_city)) {
+				return REJECTED;
+			}
+		}
+
+		// get the maximum index + 1 to be the next rid, read inside the transaction so it cannot go stale
+		ResultSet MaxResults = MaxStatement.executeQuery();
+		while (MaxResults.next()) {
+			max = MaxResults.getInt("Max");
+		}
+		bookStatement.setInt(1, max + 1);
+		bookStatement.setString(2, user);
+		bookStatement.setInt(3, fid);
+		bookStatement.setInt(4, result_dayOfMonth);
+		bookStatement.execute();
+		AddCapacityStatement.setInt(1, fid);
+		AddCapacityStatement.execute();
+		return BOOKED;
+	}
+
+	// adds the user to the waitlist of a full direct flight
+	public void transaction_waitlist(int itineraryId) throws Exception {
+		if (loggedIn) {
+			if (localSearch.isEmpty()) {
+				System.out.println("Please make a search before you join a waitlist.");
+			}else if (!validItinerary(itineraryId)) {
+				System.out.println("Please enter a valid itineraryID.");
+			}else if (itineraryFids(itineraryId).size() > 1) {
+				// the legs would free up separately and could leave the user with half an itinerary
+				System.out.println("Sorry, only direct itineraries can be waitlisted.");
+			}else {
+				int fid = itineraryFids(itineraryId).get(0);
+				try {
+					beginTransaction();
+					waitlistFindStatement.setString(1, username);
+					waitlistFindStatement.setInt(2, fid);
+					ResultSet waitlistFindResults = waitlistFindStatement.executeQuery();
+					int size = 0;
+					if (waitlistFindResults.next()) {
+						size = waitlistFindResults.getInt("size");
+					}
+					waitlistFindResults.close();
+					if (size > 0) {
+						System.out.println("You are already on the waitlist of flight " + fid + ".");
+						rollbackTransaction();
+					}else if (hasSeatFor(username, fid)) {
+						System.out.println("Flight " + fid + " still has seats, please book it directly.");
+						rollbackTransaction();
+					}else {
+						waitlistAddStatement.setString(1, username);
+						waitlistAddStatement.setInt(2, fid);
+						waitlistAddStatement.execute();
+						commitTransaction();
+						System.out.println("You have been added to the waitlist of flight " + fid + ".");
+					}
+				} catch (SQLException e) {
+					System.out.println("Failed to join the waitlist of flight " + fid + ", please try again.");
+					try {
+						rollbackTransaction();
+					} catch (SQLException se) {
+					}
+				}
+			}
+		}else {
+			System.out.println("You need to log in before you can join a waitlist.");
+		}
+	}
+
+	// hands a freed seat on given flight to the oldest waitlist entry that can still take it,
+	// inside the caller's transaction so the seat never becomes visible to anyone else
+	private void fillWaitlist(int fid) throws Exception {
+		while (true) {
+			waitlistHeadStatement.setInt(1, fid);
+			ResultSet headResults = waitlistHeadStatement.executeQuery();
+			if (!headResults.next()) {
+				headResults.close();
+				return;
+			}
+			int wid = headResults.getInt("wid");
+			String user = headResults.getString("username");
+			headResults.close();
+
+			// the seat is still taken, keep the queue as it is
+			int result = reserve(user, fid);
+			if (result == FULL) {
+				return;
+			}
+			
+			// booked, or the user can no longer take this flight, either way the entry is done
+			waitlistRemoveStatement.setInt(1, wid);
+			waitlistRemoveStatement.execute();
+			if (result == BOOKED) {
+				return;
+			}
 		}
 	}
 	
@@ -539,8 +698,21 @@ public class Query {
 					System.out.println("Please enter a valid reservationID.");
 					rollbackTransaction();
 				}else {
-					CancelStatement.setInt(1, localReservation.get(reservationId - 1));
+					int rid = localReservation.get(reservationId - 1);
+					reservationFidStatement.setInt(1, rid);
+					ResultSet fidResults = reservationFidStatement.executeQuery();
+					int fid = 0;
+					if (fidResults.next()) {
+						fid = fidResults.getInt("fid");
+					}
+					fidResults.close();
+					CancelStatement.setInt(1, rid);
 					CancelStatement.execute();
+					RemoveCapacityStatement.setInt(1, fid);
+					RemoveCapacityStatement.execute();
+					
+					// the freed seat goes to the waitlist first, in the same transaction
+					fillWaitlist(fid);
 //					System.out.println("ttt:");
 //					System.in.read();
 					commitTransaction();
@@ -565,6 +737,7 @@ public class Query {
 
     public void commitTransaction() throws Exception {
         commitTransactionStatement.executeUpdate(); 
+        transactionsRun++;
         conn.setAutoCommit(true);
     }
     public void rollbackTransaction() throws Exception {
@@ -26,3 +26,61 @@ insert into reservations values(1, 'a', 4, 1)
 
 
 
+
+
+-- drop table connections
+-- precomputed two-hop connections for July 2015, clustered for range scans by the search key
+create table connections(day_of_month int not null, origin_city varchar(34) not null, dest_city varchar(34) not null, f1_fid int not null, f2_fid int not null, total_time int not null, CONSTRAINT connPair PRIMARY KEY NONCLUSTERED (f1_fid, f2_fid))
+create clustered index connSearch on connections(origin_city, dest_city, day_of_month, total_time)
+
+insert into connections
+select f1.day_of_month, f1.origin_city, f2.dest_city, f1.fid, f2.fid, f1.actual_time + f2.actual_time
+from flights f1, flights f2
+where f1.dest_city = f2.origin_city and f1.day_of_month = f2.day_of_month
+and f1.year = 2015 and f2.year = 2015 and f1.month_id = 7 and f2.month_id = 7
+and f1.actual_time is not null and f2.actual_time is not null
+
+-- adds the connections that use a newly inserted flight as either leg
+go
+create trigger connInsert on flights after insert as
+begin
+	set nocount on
+	insert into connections
+	select f1.day_of_month, f1.origin_city, f2.dest_city, f1.fid, f2.fid, f1.actual_time + f2.actual_time
+	from inserted f1, flights f2
+	where f1.dest_city = f2.origin_city and f1.day_of_month = f2.day_of_month
+	and f1.year = 2015 and f2.year = 2015 and f1.month_id = 7 and f2.month_id = 7
+	and f1.actual_time is not null and f2.actual_time is not null
+	union
+	select f1.day_of_month, f1.origin_city, f2.dest_city, f1.fid, f2.fid, f1.actual_time + f2.actual_time
+	from flights f1, inserted f2
+	where f1.dest_city = f2.origin_city and f1.day_of_month = f2.day_of_month
+	and f1.year = 2015 and f2.year = 2015 and f1.month_id = 7 and f2.month_id = 7
+	and f1.actual_time is not null and f2.actual_time is not null
+end
+go
+
+-- drops the connections that use a removed flight as either leg
+create trigger connDelete on flights after delete as
+begin
+	set nocount on
+	delete from connections
+	where f1_fid in (select fid from deleted) or f2_fid in (select fid from deleted)
+end
+go
+
+
+-- drop table waitlist
+-- users waiting for a seat on a full flight, served in wid order
+create table waitlist(wid int identity primary key, username varchar(10) references customer, fid int references flights, CONSTRAINT oneWait UNIQUE (username, fid))
+create index waitHead on waitlist(fid, wid)
+
+
+-- drop table admission
+-- shared admission state per command: size of its slot pool, and until when it is shed (non-priority commands only)
+create table admission(command varchar(20) primary key, priority bit not null, slot_limit float not null, shed_until datetime2 not null default '2000-01-01')
+insert into admission(command, priority, slot_limit) values('search', 0, 8)
+insert into admission(command, priority, slot_limit) values('book', 1, 16)
+insert into admission(command, priority, slot_limit) values('reservations', 1, 16)
+insert into admission(command, priority, slot_limit) values('cancel', 1, 16)
+insert into admission(command, priority, slot_limit) values('waitlist', 1, 16)